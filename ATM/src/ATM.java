@@ -1,32 +1,45 @@
 import java.util.Scanner;
+import java.util.UUID;
+import java.util.function.Supplier;
 
 public class ATM {
+
+    /**
+     * Warn when this terminal is forecast to run out of cash within this many hours.
+     */
+    public static final double LOW_CASH_HOURS = 4;
+
     public static void main(String[] args) {
         // initialize scanner
         Scanner scanner = new Scanner(System.in);
 
-        // initialize Bank
-        Bank theBank = new Bank("JPMorgan Chase & Co.");
+        // initialize Bank, partitioned into shards by ID range
+        ShardedBank theBank = new ShardedBank("JPMorgan Chase & Co.", 4);
 
         // add a user, which also creates a savings account
         User user1 = theBank.addUser("Ivan", "Zelenkov", "1234");
 
         // add a checking account for our user
-        Account newAccount = new Account("Checking", user1, theBank);
-        user1.addAccount(newAccount);
-        theBank.addAccount(newAccount);
+        theBank.addAccount("Checking", user1);
+
+        // load the cash cassettes of this terminal
+        CashDispenser dispenser = new CashDispenser(
+                new int[] {100, 50, 20, 10}, new int[] {50, 50, 100, 100}, 1000);
 
         User curUser;
         while (true) {
+            // finish transfers and settle postings left unresolved by earlier sessions
+            theBank.recover();
+
             // stay in the login prompt until successful login
             curUser = ATM.mainMenuPrompt(theBank, scanner);
 
             // stay in main many until user quits
-            ATM.printUserMenu(curUser, scanner);
+            ATM.printUserMenu(curUser, theBank, scanner, dispenser);
         }
     }
 
-    public static User mainMenuPrompt(Bank theBank, Scanner scanner) {
+    public static User mainMenuPrompt(ShardedBank theBank, Scanner scanner) {
         // initialize
         String userID;
         String pin;
@@ -50,7 +63,7 @@ public class ATM {
         return authUser;
     }
 
-    public static void printUserMenu(User theUser, Scanner scanner) {
+    public static void printUserMenu(User theUser, ShardedBank theBank, Scanner scanner, CashDispenser dispenser) {
         // print a summary of the user's accounts
         theUser.printAccountSummary();
 
@@ -77,15 +90,15 @@ public class ATM {
         // process the choice
         switch (choice) {
             case 1 -> ATM.showTransactionHistory(theUser, scanner);
-            case 2 -> ATM.withdrawFunds(theUser, scanner);
-            case 3 -> ATM.depositFunds(theUser, scanner);
-            case 4 -> ATM.transferFunds(theUser, scanner);
+            case 2 -> ATM.withdrawFunds(theUser, theBank, scanner, dispenser);
+            case 3 -> ATM.depositFunds(theUser, theBank, scanner);
+            case 4 -> ATM.transferFunds(theUser, theBank, scanner);
             case 5 -> scanner.nextLine();
         }
 
         // redisplay this menu unless the user wants to quit
         if (choice != 5) {
-            ATM.printUserMenu(theUser, scanner);
+            ATM.printUserMenu(theUser, theBank, scanner, dispenser);
         }
     }
 
@@ -114,9 +127,10 @@ public class ATM {
     /**
      * Process transferring funds from one account to another
      * @param theUser   the logged-in User object
+     * @param theBank   the bank the user is a customer of
      * @param scanner   the Scanner object used for user input
      */
-    public static void transferFunds(User theUser, Scanner scanner) {
+    public static void transferFunds(User theUser, ShardedBank theBank, Scanner scanner) {
         // initialize
         int fromAccount;
         int toAccount;
@@ -133,7 +147,7 @@ public class ATM {
             }
         } while(fromAccount < 0 || fromAccount >= theUser.numAccounts());
 
-        actualBalance = theUser.getAccountBalance(fromAccount);
+        actualBalance = theBank.getAvailableBalance(theUser.getAccountUUID(fromAccount));
 
         // get the account to transfer to
         do {
@@ -156,22 +170,32 @@ public class ATM {
             }
         } while(amount < 0 || amount > actualBalance);
 
-        // finally, do the transfer
-        theUser.addAccountTransaction(fromAccount, -1*amount, String.format("Transfer to account %s", theUser.getAccountUUID(toAccount)));
-        theUser.addAccountTransaction(toAccount, amount, String.format("Transfer to account %s", theUser.getAccountUUID(fromAccount)));
+        // finally, do the transfer through the shards owning the accounts; every
+        // attempt reuses the same request ID, so a retry can't move the money twice
+        String requestId = UUID.randomUUID().toString();
+        String fromAccountId = theUser.getAccountUUID(fromAccount);
+        String toAccountId = theUser.getAccountUUID(toAccount);
+        double transferAmount = amount;
+        ATM.postWithRetry("transfer", scanner,
+                () -> theBank.transfer(fromAccountId, toAccountId, transferAmount, requestId),
+                () -> System.out.println("Please check your balance before trying again."));
     }
 
     /**
      * Process a fund withdraw from an account
      * @param theUser   the logged-in User object
+     * @param theBank   the bank the user is a customer of
      * @param scanner   the Scanner object used for user input
+     * @param dispenser the cash cassettes of this terminal
      */
-    public static void withdrawFunds(User theUser, Scanner scanner) {
+    public static void withdrawFunds(User theUser, ShardedBank theBank, Scanner scanner, CashDispenser dispenser) {
         // initialize
         int fromAccount;
         double amount;
         double actualBalance;
         String memo;
+        int[] notes;
+        double maxAmount;
 
         // get the account to transfer from
         do {
@@ -183,18 +207,34 @@ public class ATM {
             }
         } while(fromAccount < 0 || fromAccount >= theUser.numAccounts());
 
-        actualBalance = theUser.getAccountBalance(fromAccount);
+        actualBalance = theBank.getAvailableBalance(theUser.getAccountUUID(fromAccount));
 
-        // get the amount to transfer
+        // don't ask for an amount the machine could never pay out
+        if (!dispenser.canDispenseUpTo(actualBalance)) {
+            System.out.println("This machine can't dispense any amount up to your balance right now.");
+            return;
+        }
+
+        // a single withdrawal is limited by the balance and by the machine
+        maxAmount = Math.min(actualBalance, dispenser.getMaxWithdrawal());
+
+        // get the amount to withdraw, reserving the notes for it in the machine
         do {
-            System.out.printf("Enter the amount to withdraw (max $%.02f): $", actualBalance);
+            System.out.printf("Enter the amount to withdraw (max $%.02f, 0 to cancel): $", maxAmount);
             amount = scanner.nextDouble();
-            if (amount < 0) {
+            notes = null;
+            if (amount == 0) {
+                return;
+            } else if (amount < 0) {
                 System.out.println("Amount must be greater than zero.");
             } else if (amount > actualBalance) {
                 System.out.printf("Amount must not be greater than balance of $%.02f.\n", actualBalance);
+            } else if (amount > dispenser.getMaxWithdrawal()) {
+                System.out.printf("This machine dispenses at most $%d per withdrawal.\n", dispenser.getMaxWithdrawal());
+            } else if (amount != Math.floor(amount) || (notes = dispenser.reserve((int) amount)) == null) {
+                System.out.printf("This machine can't dispense $%.02f. Please try another amount.\n", amount);
             }
-        } while(amount < 0 || amount > actualBalance);
+        } while(notes == null);
 
         // gobble up rest of previous input
         scanner.nextLine();
@@ -203,16 +243,36 @@ public class ATM {
         System.out.print("Enter a memo: ");
         memo = scanner.nextLine();
 
-        // do the withdraw
-        theUser.addAccountTransaction(fromAccount, -1*amount, memo);
+        // do the withdraw on the shard owning the account, then hand out the notes;
+        // every attempt reuses the same request ID, so a retry can't post it twice
+        String requestId = UUID.randomUUID().toString();
+        String accountId = theUser.getAccountUUID(fromAccount);
+        double debit = -1*amount;
+        if (ATM.postWithRetry("withdrawal", scanner,
+                () -> theBank.addTransaction(accountId, debit, memo, requestId),
+                () -> {
+                    // no cash comes out, so undo the debit if it did reach the bank
+                    theBank.reconcile(accountId, debit, memo, requestId, true);
+                    System.out.println("No cash was dispensed. If your account was charged, it will be refunded.");
+                })) {
+            dispenser.dispense(notes);
+        } else {
+            dispenser.release(notes);
+        }
+
+        if (dispenser.isLowCash(LOW_CASH_HOURS)) {
+            System.out.printf("Cash running low: about %.01f hours left at the current rate.\n",
+                    dispenser.hoursUntilEmpty());
+        }
     }
 
     /**
      * Process a fund deposit to an account
      * @param theUser   the logged-in User object
+     * @param theBank   the bank the user is a customer of
      * @param scanner   the Scanner object used for user input
      */
-    public static void depositFunds(User theUser, Scanner scanner) {
+    public static void depositFunds(User theUser, ShardedBank theBank, Scanner scanner) {
         // initialize
         int toAccount;
         double amount;
@@ -229,7 +289,7 @@ public class ATM {
             }
         } while(toAccount < 0 || toAccount >= theUser.numAccounts());
 
-        actualBalance = theUser.getAccountBalance(toAccount);
+        actualBalance = theBank.getAvailableBalance(theUser.getAccountUUID(toAccount));
 
         // get the amount to transfer
         do {
@@ -247,7 +307,46 @@ public class ATM {
         System.out.print("Enter a memo: ");
         memo = scanner.nextLine();
 
-        // do the withdraw
-        theUser.addAccountTransaction(toAccount, amount, memo);
+        // do the deposit on the shard owning the account; every attempt
+        // reuses the same request ID, so a retry can't post it twice
+        String requestId = UUID.randomUUID().toString();
+        String accountId = theUser.getAccountUUID(toAccount);
+        double credit = amount;
+        ATM.postWithRetry("deposit", scanner,
+                () -> theBank.addTransaction(accountId, credit, memo, requestId),
+                () -> {
+                    // the money was handed in, so make sure the deposit gets posted
+                    theBank.reconcile(accountId, credit, memo, requestId, false);
+                    System.out.println("Your deposit will be posted as soon as the bank can be reached.");
+                });
+    }
+
+    /**
+     * Post to the bank, offering to retry while it can't be reached. The
+     * posting must use the same request ID on every call, so retrying can't
+     * post it twice.
+     * @param what      what is being posted, e.g. "deposit"
+     * @param scanner   the Scanner object used for user input
+     * @param posting   the posting to make
+     * @param giveUp    what to do if the user stops retrying, e.g. reconcile the posting
+     * @return          whether the posting was made
+     */
+    public static boolean postWithRetry(String what, Scanner scanner, Supplier<Boolean> posting, Runnable giveUp) {
+        while (true) {
+            try {
+                if (posting.get()) {
+                    return true;
+                }
+                System.out.printf("The %s was declined.\n", what);
+                return false;
+            } catch (ShardUnavailableException e) {
+                System.out.print("The bank could not be reached. Try again? (y/n): ");
+                if (!scanner.next().equalsIgnoreCase("y")) {
+                    System.out.printf("The %s could not be confirmed.\n", what);
+                    giveUp.run();
+                    return false;
+                }
+            }
+        }
     }
 }
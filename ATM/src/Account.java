@@ -18,7 +18,8 @@ public class Account {
     private User holder;
 
     /**
-     * The list of transactions for this account.
+     * The list of transactions for this account. Guarded by the account
+     * itself, since shards post to it from their own threads.
      */
     private ArrayList<Transaction> transactions;
 
@@ -68,7 +69,7 @@ public class Account {
      * Get the balance of this account by adding the amounts of the transactions
      * @return the balance value
      */
-    public double getBalance() {
+    public synchronized double getBalance() {
         double balance = 0;
         for (Transaction t : transactions) {
             balance += t.getAmount();
@@ -79,7 +80,7 @@ public class Account {
     /**
      * Print the transaction history of the account
      */
-    public void printTransactionHistory() {
+    public synchronized void printTransactionHistory() {
         System.out.printf("\nTransaction history for account %s\n", uuid);
         for (int t = transactions.size() - 1; t >= 0; t--) {
             System.out.println(transactions.get(t).getSummaryLine());
@@ -92,7 +93,7 @@ public class Account {
      * @param amount    the amount transacted
      * @param memo      the transaction memo
      */
-    public void addTransaction(double amount, String memo) {
+    public synchronized void addTransaction(double amount, String memo) {
         // create new transaction object and add it to our list
         Transaction newTransaction = new Transaction(amount, memo, this);
         this.transactions.add(newTransaction);
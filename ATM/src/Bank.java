@@ -3,20 +3,74 @@ import java.util.Random;
 
 public class Bank {
 
+    /**
+     * The number of distinct user IDs (6 digits).
+     */
+    public static final long USER_UUID_SPACE = 1_000_000L;
+
+    /**
+     * The number of distinct account IDs (10 digits).
+     */
+    public static final long ACCOUNT_UUID_SPACE = 10_000_000_000L;
+
     private String name;
 
     private ArrayList<User> users;
 
     private ArrayList<Account> accounts;
 
+    /**
+     * The lowest user ID (inclusive) this bank may issue.
+     */
+    private long userUUIDLow;
+
+    /**
+     * The highest user ID (exclusive) this bank may issue.
+     */
+    private long userUUIDHigh;
+
+    /**
+     * The lowest account ID (inclusive) this bank may issue.
+     */
+    private long accountUUIDLow;
+
+    /**
+     * The highest account ID (exclusive) this bank may issue.
+     */
+    private long accountUUIDHigh;
+
+    /**
+     * The results of recent transactions, by request ID, for deduplicating retries.
+     */
+    private IdempotencyCache<Boolean> requestCache;
+
     /**
      * Create a new Bank object with empty lists of users and accounts
      * @param name the name of the bank
      */
     public Bank(String name) {
+        this(name, 0, USER_UUID_SPACE, 0, ACCOUNT_UUID_SPACE);
+    }
+
+    /**
+     * Create a new Bank object that only issues IDs from the given ranges.
+     * Used by ShardedBank so every shard owns a contiguous slice of the IDs.
+     * @param name              the name of the bank
+     * @param userUUIDLow       the lowest user ID (inclusive)
+     * @param userUUIDHigh      the highest user ID (exclusive)
+     * @param accountUUIDLow    the lowest account ID (inclusive)
+     * @param accountUUIDHigh   the highest account ID (exclusive)
+     */
+    public Bank(String name, long userUUIDLow, long userUUIDHigh,
+                long accountUUIDLow, long accountUUIDHigh) {
         this.name = name;
         this.users = new ArrayList<User>();
         this.accounts = new ArrayList<Account>();
+        this.userUUIDLow = userUUIDLow;
+        this.userUUIDHigh = userUUIDHigh;
+        this.accountUUIDLow = accountUUIDLow;
+        this.accountUUIDHigh = accountUUIDHigh;
+        this.requestCache = new IdempotencyCache<Boolean>();
     }
 
     /**
@@ -27,15 +81,12 @@ public class Bank {
         // initialize
         String uuid;
         Random rng = new Random();
-        int len = 6;
         boolean nonUnique;
 
         // continue looping until we get a unique ID
         do {
-            // generate the number
-            uuid = "";
-            for (int i = 0; i < len; i++)
-                uuid += ((Integer) rng.nextInt(10)).toString();
+            // generate the number inside our ID range
+            uuid = String.format("%06d", randomInRange(rng, userUUIDLow, userUUIDHigh));
 
             // check to make sure it's unique
             nonUnique = false;
@@ -56,29 +107,37 @@ public class Bank {
      */
     public String getNewAccountUUID() {
         // initialize
-        StringBuilder uuid;
+        String uuid;
         Random rng = new Random();
-        int len = 10;
         boolean nonUnique;
 
         // continue looping until we get a unique ID
         do {
-            // generate the number
-            uuid = new StringBuilder();
-            for (int i = 0; i < len; i++)
-                uuid.append(((Integer) rng.nextInt(10)).toString());
+            // generate the number inside our ID range
+            uuid = String.format("%010d", randomInRange(rng, accountUUIDLow, accountUUIDHigh));
 
             // check to make sure it's unique
             nonUnique = false;
             for (Account a : this.accounts) {
-                if (uuid.toString().compareTo(a.getUUID()) == 0) {
+                if (uuid.compareTo(a.getUUID()) == 0) {
                     nonUnique = true;
                     break;
                 }
             }
         } while(nonUnique);
 
-        return uuid.toString();
+        return uuid;
+    }
+
+    /**
+     * Pick a random number in [low, high)
+     * @param rng   the random number generator
+     * @param low   the lower bound (inclusive)
+     * @param high  the upper bound (exclusive)
+     * @return      the random number
+     */
+    private static long randomInRange(Random rng, long low, long high) {
+        return low + (long) (rng.nextDouble() * (high - low));
     }
 
     /**
@@ -109,6 +168,26 @@ public class Bank {
         return newUser;
     }
 
+    /**
+     * Find an account of this bank by its ID
+     * @param accountId the account ID
+     * @return          the Account object, or null if there is none
+     */
+    public Account getAccount(String accountId) {
+        for (Account a : accounts) {
+            if (a.getUUID().compareTo(accountId) == 0) {
+                return a;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Log a user in
+     * @param userId    the ID of the user
+     * @param pin       the pin of the user
+     * @return          the User object, or null if the ID/pin combination is wrong
+     */
     public User userLogin(String userId, String pin) {
         // search through list of users
         for (User u : users) {
@@ -121,6 +200,24 @@ public class Bank {
         return null;
     }
 
+    /**
+     * Get the cache used to deduplicate retried transactions
+     * @return the request cache
+     */
+    public IdempotencyCache<Boolean> getRequestCache() {
+        return requestCache;
+    }
+
+    /**
+     * Change how long and how many request IDs are remembered. Previously
+     * remembered request IDs are forgotten.
+     * @param windowMillis  how long request IDs are remembered, in milliseconds
+     * @param maxEntries    how many request IDs are remembered at most
+     */
+    public void setIdempotencyWindow(long windowMillis, int maxEntries) {
+        this.requestCache = new IdempotencyCache<Boolean>(windowMillis, maxEntries);
+    }
+
     /**
      * Get the name of the bank
      * @return the name of the bank
@@ -0,0 +1,150 @@
+import java.util.HashMap;
+
+public class BankShard {
+
+    /**
+     * The Bank holding the users and accounts of this shard.
+     */
+    private Bank bank;
+
+    /**
+     * Prepared but not yet committed transaction legs, keyed by leg ID.
+     */
+    private HashMap<String, PreparedLeg> prepared;
+
+    /**
+     * One side of a two-phase transfer that has been prepared on this shard.
+     */
+    private static class PreparedLeg {
+        private String accountId;
+        private double amount;
+        private String memo;
+
+        private PreparedLeg(String accountId, double amount, String memo) {
+            this.accountId = accountId;
+            this.amount = amount;
+            this.memo = memo;
+        }
+    }
+
+    /**
+     * Create a new shard around a Bank
+     * @param bank  the Bank holding the shard's users and accounts
+     */
+    public BankShard(Bank bank) {
+        this.bank = bank;
+        this.prepared = new HashMap<String, PreparedLeg>();
+    }
+
+    /**
+     * Get the Bank holding the shard's users and accounts
+     * @return the Bank object
+     */
+    public Bank getBank() {
+        return bank;
+    }
+
+    /**
+     * Get the balance of an account minus the debits prepared against it
+     * @param accountId the account ID
+     * @return          the available balance, or NaN if the account is not on this shard
+     */
+    public synchronized double getAvailableBalance(String accountId) {
+        Account account = bank.getAccount(accountId);
+        if (account == null) {
+            return Double.NaN;
+        }
+
+        double balance = account.getBalance();
+        for (PreparedLeg leg : prepared.values()) {
+            if (leg.amount < 0 && leg.accountId.compareTo(accountId) == 0) {
+                balance += leg.amount;
+            }
+        }
+        return balance;
+    }
+
+    /**
+     * First phase of a transfer: reserve one leg on this shard
+     * @param legId     the unique ID of the leg
+     * @param accountId the account the leg posts to
+     * @param amount    the amount of the leg, negative for a debit
+     * @param memo      the memo of the transaction to post on commit
+     * @return          whether the leg can be committed
+     */
+    public synchronized boolean prepare(String legId, String accountId, double amount, String memo) {
+        // refuse unknown accounts, duplicate legs and amounts like NaN or infinity
+        if (bank.getAccount(accountId) == null || prepared.containsKey(legId)
+                || !Double.isFinite(amount)) {
+            return false;
+        }
+
+        // a debit must be covered by the balance that is not already on hold
+        if (amount < 0 && getAvailableBalance(accountId) + amount < 0) {
+            return false;
+        }
+
+        prepared.put(legId, new PreparedLeg(accountId, amount, memo));
+        return true;
+    }
+
+    /**
+     * Second phase of a transfer: post a prepared leg
+     * @param legId the ID of the prepared leg
+     * @return      whether the leg was posted now, false if it is not prepared,
+     *              e.g. because an earlier commit of it already posted it
+     */
+    public synchronized boolean commit(String legId) {
+        PreparedLeg leg = prepared.remove(legId);
+        if (leg == null) {
+            return false;
+        }
+        bank.getAccount(leg.accountId).addTransaction(leg.amount, leg.memo);
+        return true;
+    }
+
+    /**
+     * Second phase of a failed transfer: release a prepared leg
+     * @param legId the ID of the prepared leg
+     */
+    public synchronized void abort(String legId) {
+        prepared.remove(legId);
+    }
+
+    /**
+     * Post a single transaction to an account of this shard
+     * @param accountId the account ID
+     * @param amount    the amount of the transaction
+     * @param memo      the memo of the transaction
+     * @return          whether the transaction was posted, false if the account
+     *                  is not on this shard, the amount is not a finite number or
+     *                  a debit is not covered by the available balance
+     */
+    public synchronized boolean addTransaction(String accountId, double amount, String memo) {
+        Account account = bank.getAccount(accountId);
+        if (account == null || !Double.isFinite(amount)) {
+            return false;
+        }
+
+        // debits must leave the money on hold for prepared transfers alone
+        if (amount < 0 && getAvailableBalance(accountId) + amount < 0) {
+            return false;
+        }
+        account.addTransaction(amount, memo);
+        return true;
+    }
+
+    /**
+     * Post a single transaction to an account of this shard at most once per
+     * request ID, so a request repeated after a lost response isn't posted twice
+     * @param accountId the account ID
+     * @param amount    the amount of the transaction
+     * @param memo      the memo of the transaction
+     * @param requestId the client-supplied request ID, or null to always post
+     * @return          whether the transaction was posted
+     */
+    public boolean addTransaction(String accountId, double amount, String memo, String requestId) {
+        return bank.getRequestCache().submit(requestId, accountId + " " + amount,
+                () -> addTransaction(accountId, amount, memo));
+    }
+}
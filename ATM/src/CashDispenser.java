@@ -0,0 +1,304 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * The cash cassettes of one ATM terminal. Withdrawals reserve notes before
+ * the account is charged, so sessions sharing the machine can never be
+ * promised the same notes, and dispensed withdrawals feed a forecast of
+ * when the machine runs out of cash.
+ */
+public class CashDispenser {
+
+    /**
+     * How far back withdrawals count towards the withdrawal rate (1 hour).
+     */
+    public static final long RATE_WINDOW_MILLIS = 60 * 60 * 1000L;
+
+    /**
+     * The note value of each cassette, in dollars.
+     */
+    private int[] denominations;
+
+    /**
+     * The number of notes left in each cassette.
+     */
+    private int[] counts;
+
+    /**
+     * The largest amount a single withdrawal may be, in dollars.
+     */
+    private int maxWithdrawal;
+
+    /**
+     * The greatest common divisor of the note values, the step of the DP tables.
+     */
+    private int unit;
+
+    /**
+     * take[i][a] is how many notes of cassette i the fewest-notes plan for
+     * a * unit dollars uses when only cassettes 0..i are allowed, or -1 if
+     * that amount can't be made. Null until first needed.
+     */
+    private int[][] take;
+
+    /**
+     * The cassette state the tables were built for. A withdrawal can never
+     * use more than maxWithdrawal / denomination notes of a cassette, so
+     * counts are capped at that, and the tables stay valid until a cassette
+     * drops below its cap.
+     */
+    private int[] tableCounts;
+
+    /**
+     * The withdrawals dispensed within the rate window, oldest first.
+     */
+    private ArrayDeque<Dispense> recentDispenses;
+
+    /**
+     * The total of the withdrawals in recentDispenses, in dollars.
+     */
+    private long recentTotal;
+
+    /**
+     * A dispensed withdrawal and when it happened.
+     */
+    private static class Dispense {
+        private long time;
+        private int amount;
+
+        private Dispense(long time, int amount) {
+            this.time = time;
+            this.amount = amount;
+        }
+    }
+
+    /**
+     * Create a new dispenser
+     * @param denominations the note value of each cassette, in dollars
+     * @param counts        the number of notes loaded in each cassette
+     * @param maxWithdrawal the largest amount a single withdrawal may be, in dollars
+     */
+    public CashDispenser(int[] denominations, int[] counts, int maxWithdrawal) {
+        if (denominations.length == 0 || denominations.length != counts.length) {
+            throw new IllegalArgumentException("one count is needed per denomination");
+        }
+        for (int i = 0; i < denominations.length; i++) {
+            if (denominations[i] <= 0 || counts[i] < 0) {
+                throw new IllegalArgumentException("denominations must be positive and counts not negative");
+            }
+        }
+        if (maxWithdrawal <= 0) {
+            throw new IllegalArgumentException("the maximum withdrawal must be positive");
+        }
+        this.denominations = denominations.clone();
+        this.counts = counts.clone();
+        this.maxWithdrawal = maxWithdrawal;
+        this.recentDispenses = new ArrayDeque<Dispense>();
+        this.recentTotal = 0;
+
+        this.unit = 0;
+        for (int d : denominations) {
+            this.unit = gcd(this.unit, d);
+        }
+    }
+
+    private static int gcd(int a, int b) {
+        return b == 0 ? a : gcd(b, a % b);
+    }
+
+    /**
+     * Make sure the DP tables match the current cassette state, rebuilding
+     * them only if a cassette dropped below its cap since they were built.
+     */
+    private void ensureTables() {
+        int maxUnits = maxWithdrawal / unit;
+        int[] capped = new int[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            capped[i] = Math.min(counts[i], maxUnits / (denominations[i] / unit));
+        }
+        if (take == null || !Arrays.equals(capped, tableCounts)) {
+            tableCounts = capped;
+            buildTables();
+        }
+    }
+
+    /**
+     * Build the DP tables for tableCounts. Cassette i may give up to
+     * tableCounts[i] notes, and the plan with the fewest notes wins.
+     */
+    private void buildTables() {
+        int maxUnits = maxWithdrawal / unit;
+        int[] best = new int[maxUnits + 1];
+        Arrays.fill(best, Integer.MAX_VALUE);
+        best[0] = 0;
+
+        take = new int[denominations.length][maxUnits + 1];
+        for (int i = 0; i < denominations.length; i++) {
+            int step = denominations[i] / unit;
+            int[] next = new int[maxUnits + 1];
+            Arrays.fill(next, Integer.MAX_VALUE);
+            Arrays.fill(take[i], -1);
+
+            for (int a = 0; a <= maxUnits; a++) {
+                int maxNotes = Math.min(tableCounts[i], a / step);
+                for (int k = 0; k <= maxNotes; k++) {
+                    int rest = best[a - k * step];
+                    if (rest != Integer.MAX_VALUE && rest + k < next[a]) {
+                        next[a] = rest + k;
+                        take[i][a] = k;
+                    }
+                }
+            }
+            best = next;
+        }
+    }
+
+    /**
+     * Reserve the notes for a withdrawal. The notes are taken out of the
+     * cassettes right away and must be either dispensed or released.
+     * @param amount    the amount to withdraw, in dollars
+     * @return          the number of notes to take from each cassette,
+     *                  or null if the machine can't make the amount
+     */
+    public synchronized int[] reserve(int amount) {
+        if (amount <= 0 || amount > maxWithdrawal || amount % unit != 0) {
+            return null;
+        }
+        ensureTables();
+
+        // walk the tables back from the last cassette
+        int[] plan = new int[denominations.length];
+        int a = amount / unit;
+        for (int i = denominations.length - 1; i >= 0; i--) {
+            if (take[i][a] < 0) {
+                return null;
+            }
+            plan[i] = take[i][a];
+            a -= plan[i] * (denominations[i] / unit);
+        }
+
+        // take the notes out of the cassettes
+        for (int i = 0; i < plan.length; i++) {
+            counts[i] -= plan[i];
+        }
+        return plan;
+    }
+
+    /**
+     * Put reserved notes back, e.g. when the account could not be charged
+     * @param plan the plan returned by reserve
+     */
+    public synchronized void release(int[] plan) {
+        for (int i = 0; i < plan.length; i++) {
+            counts[i] += plan[i];
+        }
+    }
+
+    /**
+     * Check whether the machine can pay out any amount up to a limit
+     * @param limit the largest amount wanted, in dollars
+     * @return      whether some amount from 1 to limit can be made from the cassettes
+     */
+    public synchronized boolean canDispenseUpTo(double limit) {
+        ensureTables();
+        int last = denominations.length - 1;
+        int maxUnits = (int) Math.min(maxWithdrawal, Math.floor(limit)) / unit;
+        for (int a = 1; a <= maxUnits; a++) {
+            if (take[last][a] >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hand out reserved notes and record the withdrawal for forecasting
+     * @param plan the plan returned by reserve
+     */
+    public synchronized void dispense(int[] plan) {
+        int amount = 0;
+        for (int i = 0; i < plan.length; i++) {
+            amount += plan[i] * denominations[i];
+        }
+
+        long now = System.currentTimeMillis();
+        recentDispenses.addLast(new Dispense(now, amount));
+        recentTotal += amount;
+        expireDispenses(now);
+    }
+
+    /**
+     * Drop the withdrawals that fell out of the rate window
+     * @param now the current time, in milliseconds
+     */
+    private void expireDispenses(long now) {
+        while (!recentDispenses.isEmpty()
+                && now - recentDispenses.peekFirst().time >= RATE_WINDOW_MILLIS) {
+            recentTotal -= recentDispenses.removeFirst().amount;
+        }
+    }
+
+    /**
+     * Get the cash left in the cassettes
+     * @return the cash left, in dollars
+     */
+    public synchronized long getCashLeft() {
+        long cash = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cash += (long) counts[i] * denominations[i];
+        }
+        return cash;
+    }
+
+    /**
+     * Get the recent withdrawal rate
+     * @return the dollars dispensed per hour over the rate window
+     */
+    public synchronized double getWithdrawalRate() {
+        expireDispenses(System.currentTimeMillis());
+        return recentTotal * (60 * 60 * 1000.0 / RATE_WINDOW_MILLIS);
+    }
+
+    /**
+     * Estimate how long the cash lasts at the recent withdrawal rate
+     * @return the hours until the machine is empty, zero if it already is,
+     *         or infinity if nothing was withdrawn recently
+     */
+    public synchronized double hoursUntilEmpty() {
+        if (getCashLeft() == 0) {
+            return 0;
+        }
+        double rate = getWithdrawalRate();
+        if (rate == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return getCashLeft() / rate;
+    }
+
+    /**
+     * Check whether the machine is expected to run out of cash soon
+     * @param hours the forecast horizon, in hours
+     * @return      whether the cash runs out within the horizon, always true
+     *              for an empty machine
+     */
+    public boolean isLowCash(double hours) {
+        double hoursLeft = hoursUntilEmpty();
+        return hoursLeft == 0 || hoursLeft < hours;
+    }
+
+    /**
+     * Get the largest amount a single withdrawal may be
+     * @return the maximum withdrawal, in dollars
+     */
+    public int getMaxWithdrawal() {
+        return maxWithdrawal;
+    }
+
+    /**
+     * Get the note values of the cassettes
+     * @return the note values, in dollars
+     */
+    public int[] getDenominations() {
+        return denominations.clone();
+    }
+}
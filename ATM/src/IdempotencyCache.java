@@ -0,0 +1,201 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * Remembers the results of requests by their client-supplied request ID, so a
+ * retried request returns its original result instead of being posted twice.
+ * Results are forgotten once they are older than the window, and the oldest
+ * results are dropped early when more than the maximum number are held.
+ * Requests that are still running are never dropped, so the cache may go
+ * over its maximum by the number of requests in flight.
+ *
+ * The cache is only locked to look up or claim a request ID; the requests
+ * themselves run outside the lock, so different request IDs never wait on
+ * each other. A request that throws is not remembered as a result, so a
+ * retry after e.g. ShardUnavailableException runs it again.
+ */
+public class IdempotencyCache<T> {
+
+    /**
+     * How long results are kept by default (10 minutes).
+     */
+    public static final long DEFAULT_WINDOW_MILLIS = 10 * 60 * 1000L;
+
+    /**
+     * How many results are kept at most by default.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+    /**
+     * What a request ID was used for, and its result once known.
+     */
+    private static class CachedResult<T> {
+        private String fingerprint;
+        private long storedAt;
+
+        /**
+         * The result of the running or finished request, or null if the
+         * last run threw and the next submit should run it again.
+         */
+        private CompletableFuture<T> result;
+
+        private CachedResult(String fingerprint, long storedAt) {
+            this.fingerprint = fingerprint;
+            this.storedAt = storedAt;
+        }
+    }
+
+    /**
+     * How long results are kept, in nanoseconds.
+     */
+    private long windowNanos;
+
+    /**
+     * How many results are kept at most.
+     */
+    private int maxEntries;
+
+    /**
+     * The remembered results, oldest first.
+     */
+    private LinkedHashMap<String, CachedResult<T>> entries;
+
+    /**
+     * Create a new cache with the default window and size
+     */
+    public IdempotencyCache() {
+        this(DEFAULT_WINDOW_MILLIS, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Create a new cache
+     * @param windowMillis  how long results are kept, in milliseconds
+     * @param maxEntries    how many results are kept at most
+     */
+    public IdempotencyCache(long windowMillis, int maxEntries) {
+        this.windowNanos = windowMillis * 1_000_000L;
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, CachedResult<T>>();
+    }
+
+    /**
+     * Run a request once per request ID. If the ID was seen within the
+     * window, the original result is returned and the request is not run;
+     * if that request is still running, we wait for it.
+     * @param requestId     the client-supplied request ID, or null to always run
+     * @param fingerprint   what the request does, e.g. its accounts and amount
+     * @param request       the request to run
+     * @return              the result of the request
+     * @throws IllegalArgumentException if the request ID was used for a
+     *         request with a different fingerprint
+     */
+    public T submit(String requestId, String fingerprint, Supplier<T> request) {
+        if (requestId == null) {
+            return request.get();
+        }
+
+        // look up or claim the request ID
+        CachedResult<T> entry;
+        CompletableFuture<T> earlier = null;
+        CompletableFuture<T> mine = null;
+        synchronized (this) {
+            long now = System.nanoTime();
+            purgeExpired(now);
+
+            entry = entries.get(requestId);
+            if (entry == null) {
+                entry = new CachedResult<T>(fingerprint, now);
+                entries.put(requestId, entry);
+                trim();
+            } else if (entry.fingerprint.compareTo(fingerprint) != 0) {
+                throw new IllegalArgumentException(String.format(
+                        "request ID %s was already used for a different request", requestId));
+            }
+
+            if (entry.result != null) {
+                earlier = entry.result;
+            } else {
+                mine = new CompletableFuture<T>();
+                entry.result = mine;
+            }
+        }
+
+        // a retry gets the original result
+        if (earlier != null) {
+            try {
+                return earlier.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        try {
+            T result = request.get();
+            mine.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            // don't remember failures, so the next retry runs the request again
+            synchronized (this) {
+                if (entry.result == mine) {
+                    entry.result = null;
+                }
+            }
+            mine.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Forget the results that are older than the window. Entries are kept in
+     * the order they were stored, so we can stop at the first fresh one.
+     * @param now the current time, in nanoseconds
+     */
+    private void purgeExpired(long now) {
+        Iterator<CachedResult<T>> it = entries.values().iterator();
+        while (it.hasNext()) {
+            CachedResult<T> entry = it.next();
+            if (now - entry.storedAt < windowNanos) {
+                break;
+            }
+            if (!isRunning(entry)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Forget the oldest finished results while more than maxEntries are held
+     */
+    private void trim() {
+        Iterator<CachedResult<T>> it = entries.values().iterator();
+        while (entries.size() > maxEntries && it.hasNext()) {
+            if (!isRunning(it.next())) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Check whether the request of an entry is still running. Dropping such
+     * an entry would let a duplicate run the request a second time.
+     * @param entry the entry
+     * @return      whether its request is still running
+     */
+    private static <T> boolean isRunning(CachedResult<T> entry) {
+        return entry.result != null && !entry.result.isDone();
+    }
+
+    /**
+     * Get the number of results currently remembered
+     * @return the number of results
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+}
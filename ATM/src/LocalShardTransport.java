@@ -0,0 +1,41 @@
+/**
+ * A transport that calls a shard living in the same JVM directly.
+ */
+public class LocalShardTransport implements ShardTransport {
+
+    /**
+     * The shard to call.
+     */
+    private BankShard shard;
+
+    /**
+     * Create a new in-process transport
+     * @param shard the shard to call
+     */
+    public LocalShardTransport(BankShard shard) {
+        this.shard = shard;
+    }
+
+    public double getAvailableBalance(String accountId) {
+        return shard.getAvailableBalance(accountId);
+    }
+
+    public boolean prepare(String legId, String accountId, double amount, String memo) {
+        return shard.prepare(legId, accountId, amount, memo);
+    }
+
+    public boolean commit(String legId) {
+        return shard.commit(legId);
+    }
+
+    public void abort(String legId) {
+        shard.abort(legId);
+    }
+
+    public boolean addTransaction(String accountId, double amount, String memo, String requestId) {
+        return shard.addTransaction(accountId, amount, memo, requestId);
+    }
+
+    public void close() {
+    }
+}
@@ -0,0 +1,154 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves a BankShard over a local socket, standing in for a separate bank node.
+ *
+ * Each request and response is a single line:
+ *   BALANCE accountId              -> the available balance, or NaN
+ *   PREPARE legId accountId amount memo -> OK or FAIL
+ *   COMMIT legId                   -> OK or FAIL
+ *   ABORT legId                    -> OK
+ *   ADD accountId amount requestId memo -> OK or FAIL
+ * Leg and request IDs are URL-encoded, and a missing request ID is sent as NO_ID.
+ */
+public class ShardServer implements Runnable {
+
+    /**
+     * Stands for a missing request ID; URL encoding never produces it.
+     */
+    public static final String NO_ID = "~";
+
+    /**
+     * The shard being served.
+     */
+    private BankShard shard;
+
+    /**
+     * The socket accepting connections on the loopback interface.
+     */
+    private ServerSocket serverSocket;
+
+    /**
+     * Create a new server on a free loopback port
+     * @param shard         the shard to serve
+     * @throws IOException  if the socket could not be opened
+     */
+    public ShardServer(BankShard shard) throws IOException {
+        this.shard = shard;
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Get the port the server listens on
+     * @return the port number
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Start accepting connections in a background thread
+     */
+    public void start() {
+        Thread thread = new Thread(this, "shard-server-" + getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Accept connections until the server is closed
+     */
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket client = serverSocket.accept();
+                Thread thread = new Thread(() -> handleClient(client), "shard-client-" + getPort());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                // the server socket was closed
+                return;
+            }
+        }
+    }
+
+    /**
+     * Answer the requests of one client until it disconnects
+     * @param client the client socket
+     */
+    private void handleClient(Socket client) {
+        try (Socket s = client;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+             PrintWriter out = new PrintWriter(s.getOutputStream(), true)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                out.println(handleRequest(line));
+            }
+        } catch (IOException e) {
+            System.err.printf("error, shard client disconnected: %s\n", e.getMessage());
+        }
+    }
+
+    /**
+     * Run one request against the shard
+     * @param line  the request line
+     * @return      the response line
+     */
+    private String handleRequest(String line) {
+        String[] parts = line.split(" ", 5);
+        try {
+            switch (parts[0]) {
+                case "BALANCE":
+                    return Double.toString(shard.getAvailableBalance(parts[1]));
+                case "PREPARE":
+                    return status(shard.prepare(decodeId(parts[1]), parts[2], Double.parseDouble(parts[3]), parts[4]));
+                case "COMMIT":
+                    return status(shard.commit(decodeId(parts[1])));
+                case "ABORT":
+                    shard.abort(decodeId(parts[1]));
+                    return "OK";
+                case "ADD":
+                    return status(shard.addTransaction(parts[1], Double.parseDouble(parts[2]), parts[4],
+                            decodeId(parts[3])));
+                default:
+                    return "FAIL";
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+            // malformed requests, and request IDs reused for a different request
+            return "FAIL";
+        }
+    }
+
+    /**
+     * Decode a leg or request ID sent by SocketShardTransport
+     * @param id    the encoded ID
+     * @return      the ID, or null for NO_ID
+     */
+    private static String decodeId(String id) {
+        return id.compareTo(NO_ID) == 0 ? null : URLDecoder.decode(id, StandardCharsets.UTF_8);
+    }
+
+    private static String status(boolean ok) {
+        return ok ? "OK" : "FAIL";
+    }
+
+    /**
+     * Stop accepting connections
+     */
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            System.err.println("error, caught IOException");
+            e.printStackTrace();
+        }
+    }
+}
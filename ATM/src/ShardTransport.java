@@ -0,0 +1,36 @@
+/**
+ * The way a ShardedBank talks to one of its shards. Every method throws
+ * ShardUnavailableException when the shard can't be reached.
+ */
+public interface ShardTransport {
+
+    /**
+     * @see BankShard#getAvailableBalance(String)
+     */
+    double getAvailableBalance(String accountId);
+
+    /**
+     * @see BankShard#prepare(String, String, double, String)
+     */
+    boolean prepare(String legId, String accountId, double amount, String memo);
+
+    /**
+     * @see BankShard#commit(String)
+     */
+    boolean commit(String legId);
+
+    /**
+     * @see BankShard#abort(String)
+     */
+    void abort(String legId);
+
+    /**
+     * @see BankShard#addTransaction(String, double, String, String)
+     */
+    boolean addTransaction(String accountId, double amount, String memo, String requestId);
+
+    /**
+     * Release whatever the transport holds open
+     */
+    void close();
+}
@@ -0,0 +1,17 @@
+/**
+ * Thrown when a shard can't be reached, so the outcome of a request is not
+ * known. Unlike a false result, the request may be retried.
+ */
+public class ShardUnavailableException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Create a new exception
+     * @param message   what could not be done
+     * @param cause     the underlying failure, or null
+     */
+    public ShardUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,509 @@
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bank partitioned into shards by ID range. Shard i owns the i-th equal
+ * slice of the user ID space and of the account ID space, and a user's
+ * accounts always live on the same shard as the user.
+ *
+ * Only balances and postings go through a ShardTransport. Opening users and
+ * accounts and logging in call the shard's Bank directly, since User and
+ * Account objects are not sent over the wire, so those still need every
+ * shard to live in this JVM.
+ */
+public class ShardedBank {
+
+    /**
+     * How many times phase two of a transfer is tried per leg before the
+     * transfer is left for recover().
+     */
+    public static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * The pause before the second attempt; each later attempt waits longer.
+     */
+    public static final long RETRY_DELAY_MILLIS = 100;
+
+    private String name;
+
+    /**
+     * The shards of the bank, in ID range order.
+     */
+    private ArrayList<BankShard> shards;
+
+    /**
+     * How to reach each shard, in the same order as the shards. Copied on
+     * write, since setTransport may swap one while requests are in flight.
+     */
+    private CopyOnWriteArrayList<ShardTransport> transports;
+
+    /**
+     * Where the next new user is placed.
+     */
+    private int nextUserShard;
+
+    /**
+     * Counter for the IDs of cross-shard transfers.
+     */
+    private AtomicLong nextTransferId;
+
+    /**
+     * Transfers whose commit or abort has been decided but not yet reached
+     * every shard, by transfer ID.
+     */
+    private ConcurrentHashMap<String, PendingTransfer> inDoubt;
+
+    /**
+     * Postings whose outcome a client gave up on, still to be reconciled.
+     */
+    private ConcurrentLinkedQueue<Reconciliation> unreconciled;
+
+    /**
+     * A posting with an unknown outcome and how to settle it.
+     */
+    private static class Reconciliation {
+        private String accountId;
+        private double amount;
+        private String memo;
+        private String requestId;
+        private boolean reverse;
+
+        private Reconciliation(String accountId, double amount, String memo, String requestId, boolean reverse) {
+            this.accountId = accountId;
+            this.amount = amount;
+            this.memo = memo;
+            this.requestId = requestId;
+            this.reverse = reverse;
+        }
+    }
+
+    /**
+     * The decision of a transfer and which of its legs have applied it. The
+     * shards are kept by index, so a transport replaced by setTransport is
+     * picked up by the next attempt.
+     */
+    private static class PendingTransfer {
+        private int fromIndex;
+        private int toIndex;
+        private String debitLeg;
+        private String creditLeg;
+        private boolean commit;
+        private boolean debitDone;
+        private boolean creditDone;
+
+        private PendingTransfer(int fromIndex, int toIndex, String transferId) {
+            this.fromIndex = fromIndex;
+            this.toIndex = toIndex;
+            this.debitLeg = transferId + "-debit";
+            this.creditLeg = transferId + "-credit";
+        }
+    }
+
+    /**
+     * The results of recent routed requests, by request ID, for deduplicating retries.
+     */
+    private IdempotencyCache<Boolean> requestCache;
+
+    /**
+     * Create a new bank split into equal ID ranges, reached in-process
+     * @param name      the name of the bank
+     * @param numShards the number of shards
+     */
+    public ShardedBank(String name, int numShards) {
+        this.name = name;
+        this.shards = new ArrayList<BankShard>();
+        this.transports = new CopyOnWriteArrayList<ShardTransport>();
+        this.nextUserShard = 0;
+        this.nextTransferId = new AtomicLong();
+        this.inDoubt = new ConcurrentHashMap<String, PendingTransfer>();
+        this.unreconciled = new ConcurrentLinkedQueue<Reconciliation>();
+        this.requestCache = new IdempotencyCache<Boolean>();
+
+        for (int i = 0; i < numShards; i++) {
+            Bank bank = new Bank(name,
+                    Bank.USER_UUID_SPACE * i / numShards,
+                    Bank.USER_UUID_SPACE * (i + 1) / numShards,
+                    Bank.ACCOUNT_UUID_SPACE * i / numShards,
+                    Bank.ACCOUNT_UUID_SPACE * (i + 1) / numShards);
+            BankShard shard = new BankShard(bank);
+            this.shards.add(shard);
+            this.transports.add(new LocalShardTransport(shard));
+        }
+    }
+
+    /**
+     * Reach a shard through a different transport, e.g. a SocketShardTransport
+     * @param shardIndex    the index of the shard
+     * @param transport     the transport to use from now on
+     */
+    public void setTransport(int shardIndex, ShardTransport transport) {
+        transports.set(shardIndex, transport).close();
+    }
+
+    /**
+     * Change how long and how many request IDs are remembered, here and on
+     * every shard. Previously remembered request IDs are forgotten.
+     * @param windowMillis  how long request IDs are remembered, in milliseconds
+     * @param maxEntries    how many request IDs are remembered at most
+     */
+    public void setIdempotencyWindow(long windowMillis, int maxEntries) {
+        this.requestCache = new IdempotencyCache<Boolean>(windowMillis, maxEntries);
+        for (BankShard shard : shards) {
+            shard.getBank().setIdempotencyWindow(windowMillis, maxEntries);
+        }
+    }
+
+    /**
+     * Get a shard of the bank
+     * @param shardIndex    the index of the shard
+     * @return              the shard
+     */
+    public BankShard getShard(int shardIndex) {
+        return shards.get(shardIndex);
+    }
+
+    /**
+     * Get the number of shards of the bank
+     * @return the number of shards
+     */
+    public int numShards() {
+        return shards.size();
+    }
+
+    /**
+     * Find the shard owning an ID
+     * @param id        the user or account ID
+     * @param idSpace   the number of distinct IDs of that kind
+     * @return          the index of the owning shard, or -1 if the ID is malformed
+     */
+    private int shardIndexOf(String id, long idSpace) {
+        long value;
+        try {
+            value = Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        if (value < 0 || value >= idSpace) {
+            return -1;
+        }
+        // shard i owns [idSpace * i / n, idSpace * (i + 1) / n), so the
+        // estimate below is off by at most one after integer rounding
+        int n = shards.size();
+        int shardIndex = (int) (value * n / idSpace);
+        while (idSpace * (shardIndex + 1) / n <= value) {
+            shardIndex++;
+        }
+        while (idSpace * shardIndex / n > value) {
+            shardIndex--;
+        }
+        return shardIndex;
+    }
+
+    /**
+     * Create a new user on the next shard in turn
+     * @param firstName the user's first name
+     * @param lastName  the user's last name
+     * @param pin       the user's pin
+     * @return          the new User object
+     */
+    public synchronized User addUser(String firstName, String lastName, String pin) {
+        BankShard shard = shards.get(nextUserShard);
+        nextUserShard = (nextUserShard + 1) % shards.size();
+        synchronized (shard) {
+            return shard.getBank().addUser(firstName, lastName, pin);
+        }
+    }
+
+    /**
+     * Open a new account for a user on the user's shard
+     * @param name      the name of the account
+     * @param holder    the User object that holds the account
+     * @return          the new Account object
+     */
+    public Account addAccount(String name, User holder) {
+        BankShard shard = shards.get(shardIndexOf(holder.getUUID(), Bank.USER_UUID_SPACE));
+        synchronized (shard) {
+            Account newAccount = new Account(name, holder, shard.getBank());
+            holder.addAccount(newAccount);
+            shard.getBank().addAccount(newAccount);
+            return newAccount;
+        }
+    }
+
+    /**
+     * Log a user in on the shard owning the user ID
+     * @param userId    the ID of the user
+     * @param pin       the pin of the user
+     * @return          the User object, or null if the ID/pin combination is wrong
+     */
+    public User userLogin(String userId, String pin) {
+        int shardIndex = shardIndexOf(userId, Bank.USER_UUID_SPACE);
+        if (shardIndex < 0) {
+            return null;
+        }
+        BankShard shard = shards.get(shardIndex);
+        synchronized (shard) {
+            return shard.getBank().userLogin(userId, pin);
+        }
+    }
+
+    /**
+     * Get the available balance of an account from the shard owning it
+     * @param accountId the account ID
+     * @return          the balance minus prepared debits, or NaN if there is no such account
+     */
+    public double getAvailableBalance(String accountId) {
+        int shardIndex = shardIndexOf(accountId, Bank.ACCOUNT_UUID_SPACE);
+        if (shardIndex < 0) {
+            return Double.NaN;
+        }
+        return transports.get(shardIndex).getAvailableBalance(accountId);
+    }
+
+    /**
+     * Post a transaction on the shard owning the account
+     * @param accountId the account ID
+     * @param amount    the amount of the transaction
+     * @param memo      the memo of the transaction
+     * @return          whether the transaction was posted
+     */
+    public boolean addTransaction(String accountId, double amount, String memo) {
+        return addTransaction(accountId, amount, memo, null);
+    }
+
+    /**
+     * Post a transaction on the shard owning the account at most once per
+     * request ID. A retry returns the original result without posting again.
+     * @param accountId the account ID
+     * @param amount    the amount of the transaction
+     * @param memo      the memo of the transaction
+     * @param requestId the client-supplied request ID, or null to always post
+     * @return          whether the transaction was posted
+     * @throws ShardUnavailableException if the shard could not be reached; the
+     *         request may be retried with the same request ID
+     * @throws IllegalArgumentException if the request ID was used for a different request
+     */
+    public boolean addTransaction(String accountId, double amount, String memo, String requestId) {
+        return requestCache.submit(requestId, "add " + accountId + " " + amount,
+                () -> postTransaction(accountId, amount, memo, requestId));
+    }
+
+    private boolean postTransaction(String accountId, double amount, String memo, String requestId) {
+        int shardIndex = shardIndexOf(accountId, Bank.ACCOUNT_UUID_SPACE);
+        if (shardIndex < 0) {
+            return false;
+        }
+        // the shard dedupes too, in case an earlier attempt posted but its response was lost
+        return transports.get(shardIndex).addTransaction(accountId, amount, memo, requestId);
+    }
+
+    /**
+     * Move money between two accounts, possibly on different shards. Both
+     * legs are prepared first and only committed if both shards agree, so a
+     * transfer is either posted on both sides or on neither.
+     * @param fromAccountId the account to transfer from
+     * @param toAccountId   the account to transfer to
+     * @param amount        the amount to transfer
+     * @return              whether the transfer was posted
+     * @throws ShardUnavailableException if a shard could not be reached; the
+     *         transfer was either aborted or is finished later by recover()
+     */
+    public boolean transfer(String fromAccountId, String toAccountId, double amount) {
+        return transfer(fromAccountId, toAccountId, amount, null);
+    }
+
+    /**
+     * Move money between two accounts at most once per request ID. A retry
+     * returns the original result without moving the money again.
+     * @param fromAccountId the account to transfer from
+     * @param toAccountId   the account to transfer to
+     * @param amount        the amount to transfer
+     * @param requestId     the client-supplied request ID, or null to always transfer
+     * @return              whether the transfer was posted
+     * @throws ShardUnavailableException if a shard could not be reached; the
+     *         request may be retried with the same request ID
+     * @throws IllegalArgumentException if the request ID was used for a different request
+     */
+    public boolean transfer(String fromAccountId, String toAccountId, double amount, String requestId) {
+        return requestCache.submit(requestId, "transfer " + fromAccountId + " " + toAccountId + " " + amount,
+                () -> postTransfer(fromAccountId, toAccountId, amount, requestId));
+    }
+
+    private boolean postTransfer(String fromAccountId, String toAccountId, double amount, String requestId) {
+        int fromIndex = shardIndexOf(fromAccountId, Bank.ACCOUNT_UUID_SPACE);
+        int toIndex = shardIndexOf(toAccountId, Bank.ACCOUNT_UUID_SPACE);
+        if (fromIndex < 0 || toIndex < 0 || !Double.isFinite(amount) || amount <= 0) {
+            return false;
+        }
+
+        // a retried request continues its transfer if that is still in doubt
+        String transferId = requestId == null ? "T" + nextTransferId.incrementAndGet() : "R" + requestId;
+        PendingTransfer earlier = inDoubt.get(transferId);
+        if (earlier != null) {
+            if (!finish(earlier)) {
+                throw new ShardUnavailableException(String.format(
+                        "transfer %s is in doubt until recover() reaches its shards", transferId), null);
+            }
+            inDoubt.remove(transferId);
+            if (earlier.commit) {
+                return true;
+            }
+            // an abort only ever stays in doubt after a shard failed, so the
+            // caller was never told "declined"; run the transfer again
+        }
+
+        PendingTransfer transfer = new PendingTransfer(
+                fromIndex, toIndex, transferId);
+
+        // phase one: reserve both legs
+        ShardUnavailableException failure = null;
+        try {
+            transfer.commit = transports.get(fromIndex).prepare(transfer.debitLeg, fromAccountId, -1*amount,
+                    String.format("Transfer to account %s", toAccountId))
+                    && transports.get(toIndex).prepare(transfer.creditLeg, toAccountId, amount,
+                    String.format("Transfer from account %s", fromAccountId));
+        } catch (ShardUnavailableException e) {
+            // a leg may be on hold without us knowing, so abort both
+            transfer.commit = false;
+            failure = e;
+        }
+
+        // phase two: post both legs, or release whatever was reserved
+        inDoubt.put(transferId, transfer);
+        if (!finish(transfer)) {
+            throw new ShardUnavailableException(String.format(
+                    "transfer %s is in doubt until recover() reaches its shards", transferId), null);
+        }
+        inDoubt.remove(transferId);
+
+        if (failure != null) {
+            throw failure;
+        }
+        return transfer.commit;
+    }
+
+    /**
+     * Apply the decision of a transfer to the legs that haven't applied it
+     * yet, trying each leg up to MAX_ATTEMPTS times. Commit and abort can be
+     * repeated safely: a leg that is no longer prepared is left alone.
+     * @param transfer  the transfer to finish
+     * @return          whether both legs have applied the decision
+     */
+    private boolean finish(PendingTransfer transfer) {
+        synchronized (transfer) {
+            if (!transfer.debitDone) {
+                transfer.debitDone = applyDecision(transfer.fromIndex, transfer.debitLeg, transfer.commit);
+            }
+            if (!transfer.creditDone) {
+                transfer.creditDone = applyDecision(transfer.toIndex, transfer.creditLeg, transfer.commit);
+            }
+            return transfer.debitDone && transfer.creditDone;
+        }
+    }
+
+    /**
+     * Commit or abort one leg, retrying while its shard can't be reached
+     * @param shardIndex    the index of the leg's shard
+     * @param legId         the ID of the leg
+     * @param commit        whether to commit rather than abort
+     * @return              whether the shard acknowledged the decision
+     */
+    private boolean applyDecision(int shardIndex, String legId, boolean commit) {
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            try {
+                ShardTransport transport = transports.get(shardIndex);
+                if (commit) {
+                    transport.commit(legId);
+                } else {
+                    transport.abort(legId);
+                }
+                return true;
+            } catch (ShardUnavailableException e) {
+                if (attempt == MAX_ATTEMPTS) {
+                    break;
+                }
+                try {
+                    Thread.sleep(RETRY_DELAY_MILLIS * attempt);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Settle a posting whose outcome is unknown because the client gave up
+     * on it. The posting is submitted again under its request ID, which
+     * posts it if it never arrived and is a no-op if it did; when reversing,
+     * a posted transaction is then undone by an opposite one. Both steps
+     * are deduplicated, so this is safe to repeat. If a shard can't be
+     * reached, the posting is queued for recover().
+     * @param accountId the account ID of the posting
+     * @param amount    the amount of the posting
+     * @param memo      the memo of the posting
+     * @param requestId the request ID the posting was submitted with
+     * @param reverse   whether to undo the posting rather than complete it,
+     *                  e.g. for a withdrawal whose cash was never dispensed
+     * @return          whether the posting was settled now
+     */
+    public boolean reconcile(String accountId, double amount, String memo, String requestId, boolean reverse) {
+        Reconciliation reconciliation = new Reconciliation(accountId, amount, memo, requestId, reverse);
+        if (settle(reconciliation)) {
+            return true;
+        }
+        unreconciled.add(reconciliation);
+        return false;
+    }
+
+    /**
+     * Try to settle a posting with an unknown outcome
+     * @param reconciliation    the posting to settle
+     * @return                  whether the shard could be reached
+     */
+    private boolean settle(Reconciliation reconciliation) {
+        try {
+            boolean posted = addTransaction(reconciliation.accountId, reconciliation.amount,
+                    reconciliation.memo, reconciliation.requestId);
+            if (posted && reconciliation.reverse) {
+                addTransaction(reconciliation.accountId, -1*reconciliation.amount,
+                        String.format("Reversal: %s", reconciliation.memo),
+                        reconciliation.requestId + ":reversal");
+            }
+            return true;
+        } catch (ShardUnavailableException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Try again to finish the transfers that are in doubt and to settle the
+     * postings waiting for reconciliation, e.g. once a shard is reachable again
+     * @return the number of transfers and postings still unresolved
+     */
+    public int recover() {
+        for (PendingTransfer transfer : inDoubt.values()) {
+            if (finish(transfer)) {
+                inDoubt.values().remove(transfer);
+            }
+        }
+        for (Reconciliation reconciliation : unreconciled) {
+            if (settle(reconciliation)) {
+                unreconciled.remove(reconciliation);
+            }
+        }
+        return inDoubt.size() + unreconciled.size();
+    }
+
+    /**
+     * Get the name of the bank
+     * @return the name of the bank
+     */
+    public String getName() {
+        return this.name;
+    }
+}
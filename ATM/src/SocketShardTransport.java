@@ -0,0 +1,155 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A transport that talks to a ShardServer over a local socket.
+ * A lost connection or a shard that doesn't answer within TIMEOUT_MILLIS
+ * throws ShardUnavailableException, since the request may or may not have
+ * reached the shard. The broken connection is dropped and the next request
+ * connects again.
+ */
+public class SocketShardTransport implements ShardTransport {
+
+    /**
+     * How long to wait for a connection or a response before giving up.
+     */
+    public static final int TIMEOUT_MILLIS = 5000;
+
+    /**
+     * The port of the shard server.
+     */
+    private int port;
+
+    /**
+     * The connection to the shard server, or null after it broke.
+     */
+    private Socket socket;
+
+    private BufferedReader in;
+
+    private PrintWriter out;
+
+    /**
+     * Connect to a shard server on the loopback interface
+     * @param port          the port of the server
+     * @throws IOException  if the connection could not be made
+     */
+    public SocketShardTransport(int port) throws IOException {
+        this.port = port;
+        connect();
+    }
+
+    /**
+     * Open a new connection to the shard server
+     * @throws IOException if the connection could not be made
+     */
+    private void connect() throws IOException {
+        Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), TIMEOUT_MILLIS);
+            s.setSoTimeout(TIMEOUT_MILLIS);
+            this.in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+            this.out = new PrintWriter(s.getOutputStream(), true);
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+        this.socket = s;
+    }
+
+    /**
+     * Send one request line and wait for its response line, connecting
+     * again first if the last connection broke
+     * @param request   the request line
+     * @return          the response line
+     * @throws ShardUnavailableException if the connection failed or timed out
+     */
+    private synchronized String send(String request) {
+        String response;
+        try {
+            if (socket == null) {
+                connect();
+            }
+            out.println(request);
+            if (out.checkError()) {
+                throw new IOException("could not send to shard");
+            }
+            response = in.readLine();
+            if (response == null) {
+                throw new IOException("shard closed the connection");
+            }
+        } catch (IOException e) {
+            // a late response would be read as the answer to the next
+            // request, so never reuse a connection after a failure
+            disconnect();
+            throw new ShardUnavailableException("shard request failed", e);
+        }
+        return response;
+    }
+
+    /**
+     * Drop the current connection, if any
+     */
+    private void disconnect() {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // the connection is being thrown away anyway
+        }
+        socket = null;
+    }
+
+    public double getAvailableBalance(String accountId) {
+        return Double.parseDouble(send("BALANCE " + accountId));
+    }
+
+    public boolean prepare(String legId, String accountId, double amount, String memo) {
+        return "OK".equals(send(String.format("PREPARE %s %s %s %s",
+                encodeId(legId), accountId, Double.toString(amount), oneLine(memo))));
+    }
+
+    public boolean commit(String legId) {
+        return "OK".equals(send("COMMIT " + encodeId(legId)));
+    }
+
+    public void abort(String legId) {
+        send("ABORT " + encodeId(legId));
+    }
+
+    public boolean addTransaction(String accountId, double amount, String memo, String requestId) {
+        return "OK".equals(send(String.format("ADD %s %s %s %s",
+                accountId, Double.toString(amount), encodeId(requestId), oneLine(memo))));
+    }
+
+    /**
+     * Encode a leg or request ID as a single token of the protocol
+     * @param id    the ID, or null
+     * @return      the encoded ID, or ShardServer.NO_ID for null
+     */
+    private static String encodeId(String id) {
+        return id == null ? ShardServer.NO_ID : URLEncoder.encode(id, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Make sure a memo cannot break the line-based protocol
+     * @param memo  the memo
+     * @return      the memo without line breaks
+     */
+    private static String oneLine(String memo) {
+        return memo.replace('\n', ' ').replace('\r', ' ');
+    }
+
+    public synchronized void close() {
+        disconnect();
+    }
+}